@@ -40,6 +40,8 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.poi.poifs.filesystem.FileMagic;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellType;
 import org.apache.poi.ss.usermodel.Row;
@@ -54,7 +56,7 @@ public class E2xCmdline {
             throws ParseException, IOException, XMLStreamException, FactoryConfigurationError {
         final CommandLineParser parser = new DefaultParser();
         final Options options = new Options();
-        options.addOption("i", "input", true, "Input xlsx File");
+        options.addOption("i", "input", true, "Input xlsx or xls File");
         options.addOption("o", "output", true, "Output XML (or otherwise if transformed) file");
         options.addOption("w", "workbooks", true,
                 "optional: Workbook numbers to export 0,1,2,...,n");
@@ -183,7 +185,10 @@ public class E2xCmdline {
     }
 
     /**
-     * Parses an inputstream containin xlsx into an outputStream containing XML
+     * Parses an inputstream containing xlsx or xls into an outputStream
+     * containing XML. Legacy xls input is read through the HSSF event API, but
+     * the raw file is buffered in memory first. Use the command line with an
+     * input file to keep memory bounded for large xls files
      *
      * @param inputStream
      *        the source
@@ -194,24 +199,34 @@ public class E2xCmdline {
      */
     public void parse(final InputStream inputStream, final OutputStream outputStream)
             throws IOException, XMLStreamException {
-        final XSSFWorkbook workbook = new XSSFWorkbook(inputStream);
+        final InputStream source = FileMagic.prepareToCheckMagic(inputStream);
         final XMLStreamWriter out = this.getXMLWriter(outputStream);
         out.writeStartDocument();
         out.writeStartElement("workbook");
-        final int sheetCount = workbook.getNumberOfSheets();
-        for (int i = 0; i < sheetCount; i++) {
-            final XSSFSheet sheet = workbook.getSheetAt(i);
-            try {
-                this.export(sheet, out);
-            } catch (FileNotFoundException | XMLStreamException
-                    | FactoryConfigurationError e) {
-                e.printStackTrace();
+        try {
+            if (FileMagic.valueOf(source) == FileMagic.OLE2) {
+                try (final POIFSFileSystem fs = new POIFSFileSystem(source)) {
+                    new HSSFStreamListener(this, out, true).process(fs);
+                }
+            } else {
+                final XSSFWorkbook workbook = new XSSFWorkbook(source);
+                final int sheetCount = workbook.getNumberOfSheets();
+                for (int i = 0; i < sheetCount; i++) {
+                    final XSSFSheet sheet = workbook.getSheetAt(i);
+                    try {
+                        this.export(sheet, out);
+                    } catch (FileNotFoundException | XMLStreamException
+                            | FactoryConfigurationError e) {
+                        e.printStackTrace();
+                    }
+                }
+                workbook.close();
             }
+        } finally {
+            out.writeEndElement();
+            out.writeEndDocument();
+            out.close();
         }
-        out.writeEndElement();
-        out.writeEndDocument();
-        out.close();
-        workbook.close();
     }
 
     /**
@@ -245,8 +260,17 @@ public class E2xCmdline {
         System.out.println("..");
     }
 
-    private boolean exportThisSheet(final XSSFSheet sheet, final int i) {
-        String name1 = sheet.getSheetName().trim().toLowerCase();
+    /**
+     * Checks if a sheet was selected for export using its name or number
+     *
+     * @param sheetName
+     *        the name of the sheet
+     * @param i
+     *        the position of the sheet in the workbook
+     * @return true if the sheet is in the export list
+     */
+    boolean exportThisSheet(final String sheetName, final int i) {
+        String name1 = sheetName.trim().toLowerCase();
         String name2 = String.valueOf(i);
         return this.sheetNumbers.contains(name1) || this.sheetNumbers.contains(name2);
     }
@@ -313,10 +337,20 @@ public class E2xCmdline {
         return out;
     }
 
-    private XMLStreamWriter getXMLWriter(final XSSFSheet sheet)
+    /**
+     * Create an XML Streamwriter for a single sheet's output file
+     *
+     * @param sheetName
+     *        the sheet name, becomes part of the file name
+     * @return the StreamWriter
+     * @throws FileNotFoundException
+     * @throws UnsupportedEncodingException
+     * @throws XMLStreamException
+     */
+    XMLStreamWriter getXMLWriter(final String sheetName)
             throws FileNotFoundException, UnsupportedEncodingException, XMLStreamException {
         final String outputSheetName =
-                this.outputFileName + "." + sheet.getSheetName() + this.outputExtension;
+                this.outputFileName + "." + sheetName + this.outputExtension;
         final File outFile = new File(outputSheetName);
         if (outFile.exists()) {
             outFile.delete();
@@ -334,9 +368,10 @@ public class E2xCmdline {
      * @throws XMLStreamException
      */
     private void parse() throws IOException, XMLStreamException {
-        final InputStream inputStream = new FileInputStream(new File(this.inputFileName));
-        final XSSFWorkbook workbook = new XSSFWorkbook(inputStream);
-        final int sheetCount = workbook.getNumberOfSheets();
+        final File inputFile = new File(this.inputFileName);
+        final InputStream inputStream =
+                FileMagic.prepareToCheckMagic(new FileInputStream(inputFile));
+        final boolean isLegacyFormat = FileMagic.valueOf(inputStream) == FileMagic.OLE2;
         XMLStreamWriter out = null;
 
         if (this.exportSingleFile) {
@@ -352,16 +387,54 @@ public class E2xCmdline {
             out.writeStartElement("workbook");
         }
 
+        try {
+            if (isLegacyFormat) {
+                // xls files are streamed record by record, no workbook in memory
+                inputStream.close();
+                try (final POIFSFileSystem fs = new POIFSFileSystem(inputFile, true)) {
+                    new HSSFStreamListener(this, out, this.exportAllSheets).process(fs);
+                }
+            } else {
+                this.exportXSSF(inputStream, out);
+            }
+        } finally {
+            // Close the XML if still open
+            if (this.exportSingleFile) {
+                out.writeEndElement();
+                out.writeEndDocument();
+            }
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Exports the selected sheets of an xlsx input
+     *
+     * @param inputStream
+     *        the xlsx source
+     * @param singleOut
+     *        the XML output when exporting to a single file, otherwise null
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    private void exportXSSF(final InputStream inputStream, final XMLStreamWriter singleOut)
+            throws IOException, XMLStreamException {
+        final XSSFWorkbook workbook = new XSSFWorkbook(inputStream);
+        final int sheetCount = workbook.getNumberOfSheets();
+        XMLStreamWriter out = singleOut;
+
         for (int i = 0; i < sheetCount; i++) {
 
             try {
 
                 final XSSFSheet sheet = workbook.getSheetAt(i);
 
-                if (this.exportAllSheets || this.exportThisSheet(sheet, i)) {
+                if (this.exportAllSheets || this.exportThisSheet(sheet.getSheetName(), i)) {
 
                     if (!this.exportSingleFile) {
-                        out = this.getXMLWriter(sheet);
+                        out = this.getXMLWriter(sheet.getSheetName());
                         out.writeStartDocument();
                     }
                     this.export(sheet, out);
@@ -377,14 +450,6 @@ public class E2xCmdline {
             }
 
         }
-        // Close the XML if still open
-        if (this.exportSingleFile) {
-            out.writeEndElement();
-            out.writeEndDocument();
-        }
-        if (out != null) {
-            out.close();
-        }
         workbook.close();
         inputStream.close();
     }
@@ -403,7 +468,7 @@ public class E2xCmdline {
      * @param columns
      *        the Map with column titles
      */
-    private void writeAnyCell(final int row, final int col, final String cellValue,
+    void writeAnyCell(final int row, final int col, final String cellValue,
             final XMLStreamWriter out,
             final Map<String, String> columns) {
         try {
@@ -467,29 +532,9 @@ public class E2xCmdline {
             out.writeStartElement("columns");
             while (cellIterator.hasNext()) {
                 final Cell cell = cellIterator.next();
-                // Generate empty headers if required
-                if (this.exportEmptyCells) {
-                    final int columnIndex = cell.getColumnIndex();
-                    while (count < columnIndex) {
-                        final String noLabel = "NoLabel" + String.valueOf(count);
-                        columns.put(String.valueOf(count), noLabel);
-                        out.writeStartElement("column");
-                        out.writeAttribute("empty", "true");
-                        out.writeAttribute("col", String.valueOf(count));
-                        out.writeAttribute("title", noLabel);
-                        out.writeEndElement();
-                        count++;
-                    }
-                }
-
+                count = this.writeEmptyColumns(count, cell.getColumnIndex(), out, columns);
                 final String cellValue = this.getCellValue(cell, count);
-                if (cellValue != null) {
-                    columns.put(String.valueOf(cell.getColumnIndex()), cellValue);
-                    out.writeStartElement("column");
-                    out.writeAttribute("title", cellValue);
-                    out.writeAttribute("col", String.valueOf(cell.getColumnIndex()));
-                    out.writeEndElement();
-                }
+                this.writeColumn(cell.getColumnIndex(), cellValue, out, columns);
                 count++;
             }
             out.writeEndElement();
@@ -498,6 +543,89 @@ public class E2xCmdline {
         }
     }
 
+    /**
+     * Writes a column title element and remembers the title for the cells
+     *
+     * @param col
+     *        the column index
+     * @param cellValue
+     *        the title, nothing is written when null
+     * @param out
+     *        the XML output stream
+     * @param columns
+     *        the Map with column titles
+     * @throws XMLStreamException
+     */
+    void writeColumn(final int col, final String cellValue, final XMLStreamWriter out,
+            final Map<String, String> columns) throws XMLStreamException {
+        if (cellValue != null) {
+            columns.put(String.valueOf(col), cellValue);
+            out.writeStartElement("column");
+            out.writeAttribute("title", cellValue);
+            out.writeAttribute("col", String.valueOf(col));
+            out.writeEndElement();
+        }
+    }
+
+    /**
+     * Generates empty headers up to a column if required
+     *
+     * @param count
+     *        the next column without a header
+     * @param columnIndex
+     *        the column of the next header cell
+     * @param out
+     *        the XML output stream
+     * @param columns
+     *        the Map with column titles
+     * @return the next column without a header
+     * @throws XMLStreamException
+     */
+    int writeEmptyColumns(final int count, final int columnIndex, final XMLStreamWriter out,
+            final Map<String, String> columns) throws XMLStreamException {
+        int result = count;
+        if (this.exportEmptyCells) {
+            while (result < columnIndex) {
+                final String noLabel = "NoLabel" + String.valueOf(result);
+                columns.put(String.valueOf(result), noLabel);
+                out.writeStartElement("column");
+                out.writeAttribute("empty", "true");
+                out.writeAttribute("col", String.valueOf(result));
+                out.writeAttribute("title", noLabel);
+                out.writeEndElement();
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Generates empty cells up to a column if required
+     *
+     * @param row
+     *        the row index of the cells
+     * @param count
+     *        the next column without a cell
+     * @param columnIndex
+     *        the column of the next actual cell
+     * @param out
+     *        the XML output stream
+     * @param columns
+     *        the Map with column titles
+     * @return the next column without a cell
+     */
+    int writeEmptyCells(final int row, final int count, final int columnIndex,
+            final XMLStreamWriter out, final Map<String, String> columns) {
+        int result = count;
+        if (this.exportEmptyCells) {
+            while (result < columnIndex) {
+                this.writeAnyCell(row, result, null, out, columns);
+                result++;
+            }
+        }
+        return result;
+    }
+
     private void writeRow(final Row row, final XMLStreamWriter out,
             final Map<String, String> columns) {
         try {
@@ -509,13 +637,7 @@ public class E2xCmdline {
             final Iterator<Cell> cellIterator = row.iterator();
             while (cellIterator.hasNext()) {
                 final Cell cell = cellIterator.next();
-                final int columnIndex = cell.getColumnIndex();
-                if (this.exportEmptyCells) {
-                    while (count < columnIndex) {
-                        this.writeAnyCell(rowIndex, count, null, out, columns);
-                        count++;
-                    }
-                }
+                count = this.writeEmptyCells(rowIndex, count, cell.getColumnIndex(), out, columns);
                 this.writeCell(cell, out, columns);
                 count++;
             }
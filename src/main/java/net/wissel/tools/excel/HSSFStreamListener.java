@@ -0,0 +1,505 @@
+/**
+ * Streams legacy Excel (xls) records into the Excel2XML format
+ *
+ * Copyright 2017 St. Wissel
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.wissel.tools.excel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.model.HSSFFormulaParser;
+import org.apache.poi.hssf.model.InternalWorkbook;
+import org.apache.poi.hssf.record.ArrayRecord;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BlankRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.MulBlankRecord;
+import org.apache.poi.hssf.record.MulRKRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.RKRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.RowRecord;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.SharedFormulaRecord;
+import org.apache.poi.hssf.record.SharedValueRecordBase;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.formula.ptg.ExpPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.CellType;
+
+/**
+ * Exports an xls workbook using the HSSF event API. Records are written out
+ * as they arrive, so only the workbook globals (sheet names, shared strings,
+ * defined names), the shared formulas of the current sheet and the row
+ * numbers of the current row block are kept in memory
+ *
+ * The generated XML matches the xlsx export: the first row of a sheet
+ * becomes the columns, formulas return their cached values
+ */
+class HSSFStreamListener implements HSSFListener {
+
+    private final E2xCmdline exporter;
+    // Output for all sheets, null when each sheet gets its own file
+    private final XMLStreamWriter singleOut;
+    private final boolean exportAllSheets;
+
+    // Workbook globals, kept until the first sheet to build the stub workbook
+    private List<Record> globalRecords = new ArrayList<>();
+    private boolean inGlobals = false;
+    private final List<BoundSheetRecord> boundSheets = new ArrayList<>();
+    private SSTRecord sst;
+    // Renders formula text, knows sheet names and defined names
+    private HSSFWorkbook stubWorkbook;
+    private BoundSheetRecord[] sheetsInStreamOrder;
+    private int sheetIndex = -1;
+    // Nesting of BOF/EOF pairs, charts inside a sheet have their own
+    private int depth = 0;
+
+    // State of the sheet currently exported, out is null when skipped
+    private XMLStreamWriter out;
+    private Map<String, String> columns;
+    private final TreeSet<Integer> pendingRows = new TreeSet<>();
+    private boolean isFirst;
+    private int currentRow;
+    private int count;
+
+    // A string formula result comes in the record after the formula
+    private boolean expectFormulaString;
+    private int formulaRow;
+    private int formulaCol;
+    // The first cell of a shared formula comes before its SHRFMLA record
+    private FormulaRecord pendingFormula;
+    // Shared and array formulas of the current sheet, keyed by their first cell
+    private final Map<String, SharedValueRecordBase> sharedValues = new HashMap<>();
+
+    /**
+     * @param exporter
+     *        provides the XML writing and the sheet selection
+     * @param singleOut
+     *        the XML output for all sheets or null for one file per sheet
+     * @param exportAllSheets
+     *        export all sheets or only the selected ones
+     */
+    HSSFStreamListener(final E2xCmdline exporter, final XMLStreamWriter singleOut,
+            final boolean exportAllSheets) {
+        this.exporter = exporter;
+        this.singleOut = singleOut;
+        this.exportAllSheets = exportAllSheets;
+    }
+
+    /**
+     * Streams all records of the workbook through this listener
+     *
+     * @param fs
+     *        the file system containing the xls workbook
+     * @throws IOException
+     */
+    public void process(final POIFSFileSystem fs) throws IOException {
+        final HSSFRequest request = new HSSFRequest();
+        request.addListenerForAllRecords(this);
+        final HSSFEventFactory factory = new HSSFEventFactory();
+        try {
+            factory.processWorkbookEvents(request, fs);
+        } finally {
+            // Close a sheet left open by a broken stream
+            this.endSheet();
+        }
+    }
+
+    @Override
+    public void processRecord(final Record record) {
+        // A broken record must not stop the export, same as a broken xlsx sheet
+        try {
+            if (this.inGlobals) {
+                this.collectGlobal(record);
+                return;
+            }
+            switch (record.getSid()) {
+                case BOFRecord.sid:
+                    if (this.depth == 0
+                            && ((BOFRecord) record).getType() == BOFRecord.TYPE_WORKBOOK) {
+                        this.inGlobals = true;
+                        this.collectGlobal(record);
+                        break;
+                    }
+                    this.depth++;
+                    if (this.depth == 1) {
+                        this.startSheet();
+                    }
+                    break;
+                case EOFRecord.sid:
+                    if (this.depth == 1) {
+                        this.endSheet();
+                    }
+                    this.depth--;
+                    break;
+                default:
+                    if (this.depth == 1 && this.out != null) {
+                        this.processSheetRecord(record);
+                    }
+            }
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Keeps the workbook globals needed for sheet names, strings and formulas
+     *
+     * @param record
+     *        a record between the workbook BOF and EOF
+     */
+    private void collectGlobal(final Record record) {
+        this.globalRecords.add(record);
+        if (record instanceof BoundSheetRecord) {
+            this.boundSheets.add((BoundSheetRecord) record);
+        } else if (record instanceof SSTRecord) {
+            this.sst = (SSTRecord) record;
+        } else if (record instanceof EOFRecord) {
+            this.inGlobals = false;
+        }
+    }
+
+    /**
+     * Builds the workbook used to render formula text, once for all sheets
+     *
+     * @return the stub workbook or null if the globals can't be read
+     */
+    private HSSFWorkbook createStubWorkbook() {
+        try {
+            final HSSFWorkbook result =
+                    HSSFWorkbook.create(InternalWorkbook.createWorkbook(this.globalRecords));
+            // Sheet references are resolved through the workbook's sheets
+            for (final BoundSheetRecord sheet : this.boundSheets) {
+                result.createSheet(sheet.getSheetname());
+            }
+            return result;
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Cell records of a selected sheet
+     *
+     * @param record
+     *        the record to export
+     */
+    private void processSheetRecord(final Record record) {
+        if (record instanceof SharedFormulaRecord || record instanceof ArrayRecord) {
+            final SharedValueRecordBase shared = (SharedValueRecordBase) record;
+            this.sharedValues.put(
+                    shared.getFirstRow() + ":" + shared.getFirstColumn(), shared);
+        }
+        this.writePendingFormula();
+        switch (record.getSid()) {
+            case RowRecord.sid:
+                this.pendingRows.add(((RowRecord) record).getRowNumber());
+                break;
+            case BlankRecord.sid:
+                final BlankRecord blank = (BlankRecord) record;
+                this.writeCell(blank.getRow(), blank.getColumn(), null, true);
+                break;
+            case MulBlankRecord.sid:
+                final MulBlankRecord mulBlank = (MulBlankRecord) record;
+                for (int i = 0; i < mulBlank.getNumColumns(); i++) {
+                    this.writeCell(mulBlank.getRow(), mulBlank.getFirstColumn() + i, null, true);
+                }
+                break;
+            case BoolErrRecord.sid:
+                final BoolErrRecord boolErr = (BoolErrRecord) record;
+                final String boolValue =
+                        boolErr.isBoolean() ? String.valueOf(boolErr.getBooleanValue()) : null;
+                this.writeCell(boolErr.getRow(), boolErr.getColumn(), boolValue, false);
+                break;
+            case FormulaRecord.sid:
+                this.processFormula((FormulaRecord) record);
+                break;
+            case StringRecord.sid:
+                if (this.expectFormulaString) {
+                    this.expectFormulaString = false;
+                    this.writeCell(this.formulaRow, this.formulaCol,
+                            ((StringRecord) record).getString(), false);
+                }
+                break;
+            case LabelRecord.sid:
+                final LabelRecord label = (LabelRecord) record;
+                this.writeCell(label.getRow(), label.getColumn(), label.getValue(), false);
+                break;
+            case LabelSSTRecord.sid:
+                final LabelSSTRecord labelSST = (LabelSSTRecord) record;
+                final String sstValue = this.sst.getString(labelSST.getSSTIndex()).getString();
+                this.writeCell(labelSST.getRow(), labelSST.getColumn(), sstValue, false);
+                break;
+            case NumberRecord.sid:
+                final NumberRecord number = (NumberRecord) record;
+                this.writeCell(number.getRow(), number.getColumn(),
+                        String.valueOf(number.getValue()), false);
+                break;
+            case RKRecord.sid:
+                final RKRecord rk = (RKRecord) record;
+                this.writeCell(rk.getRow(), rk.getColumn(), String.valueOf(rk.getRKNumber()),
+                        false);
+                break;
+            case MulRKRecord.sid:
+                final MulRKRecord mulRK = (MulRKRecord) record;
+                for (int i = 0; i < mulRK.getNumColumns(); i++) {
+                    this.writeCell(mulRK.getRow(), mulRK.getFirstColumn() + i,
+                            String.valueOf(mulRK.getRKNumberAt(i)), false);
+                }
+                break;
+            default:
+                // Formatting and other records don't go into the XML
+                break;
+        }
+    }
+
+    /**
+     * Formulas return their cached value, unless it is an error, then the
+     * formula is returned
+     *
+     * @param formula
+     *        the formula record
+     */
+    private void processFormula(final FormulaRecord formula) {
+        final CellType cacheCellType = formula.getCachedResultTypeEnum();
+        String cellValue;
+        switch (cacheCellType) {
+            case STRING:
+                if (formula.hasCachedResultString()) {
+                    this.expectFormulaString = true;
+                    this.formulaRow = formula.getRow();
+                    this.formulaCol = formula.getColumn();
+                    return;
+                }
+                cellValue = "";
+                break;
+            case NUMERIC:
+                cellValue = String.valueOf(formula.getValue());
+                break;
+            case BOOLEAN:
+                cellValue = String.valueOf(formula.getCachedBooleanValue());
+                break;
+            default:
+                final Ptg[] tokens = formula.getParsedExpression();
+                if (tokens.length == 1 && tokens[0] instanceof ExpPtg
+                        && this.getSharedValue((ExpPtg) tokens[0]) == null) {
+                    // Wait for the shared formula record that follows
+                    this.pendingFormula = formula;
+                    return;
+                }
+                cellValue = this.getFormulaText(formula);
+        }
+        this.writeCell(formula.getRow(), formula.getColumn(), cellValue, false);
+    }
+
+    /**
+     * Writes a formula cell that was waiting for its shared formula
+     */
+    private void writePendingFormula() {
+        if (this.pendingFormula != null) {
+            final FormulaRecord formula = this.pendingFormula;
+            this.pendingFormula = null;
+            this.writeCell(formula.getRow(), formula.getColumn(), this.getFormulaText(formula),
+                    false);
+        }
+    }
+
+    private SharedValueRecordBase getSharedValue(final ExpPtg exp) {
+        return this.sharedValues.get(exp.getRow() + ":" + exp.getColumn());
+    }
+
+    /**
+     * Renders the formula of a cell, shared and array formulas are expanded
+     *
+     * @param formula
+     *        the formula record
+     * @return the formula text or null if it can't be rendered
+     */
+    private String getFormulaText(final FormulaRecord formula) {
+        try {
+            Ptg[] tokens = formula.getParsedExpression();
+            if (tokens.length == 1 && tokens[0] instanceof ExpPtg) {
+                final SharedValueRecordBase shared = this.getSharedValue((ExpPtg) tokens[0]);
+                if (shared instanceof SharedFormulaRecord) {
+                    tokens = ((SharedFormulaRecord) shared).getFormulaTokens(formula);
+                } else if (shared instanceof ArrayRecord) {
+                    tokens = ((ArrayRecord) shared).getFormulaTokens();
+                }
+            }
+            return HSSFFormulaParser.toFormulaString(this.stubWorkbook, tokens);
+        } catch (final RuntimeException e) {
+            System.err.println("Formula in row " + formula.getRow() + ", col "
+                    + formula.getColumn() + " can't be rendered: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Begins the next sheet in the stream, if it is selected for export
+     */
+    private void startSheet() {
+        if (this.sheetsInStreamOrder == null) {
+            this.sheetsInStreamOrder = BoundSheetRecord.orderByBofPosition(this.boundSheets);
+            this.stubWorkbook = this.createStubWorkbook();
+            this.globalRecords = null;
+        }
+        this.sheetIndex++;
+        this.out = null;
+        if (this.sheetIndex >= this.sheetsInStreamOrder.length) {
+            return;
+        }
+        final BoundSheetRecord sheet = this.sheetsInStreamOrder[this.sheetIndex];
+        final String sheetName = sheet.getSheetname();
+        // Sheet numbers follow the workbook order, not the stream order
+        final int sheetNumber = this.boundSheets.indexOf(sheet);
+        if (!this.exportAllSheets && !this.exporter.exportThisSheet(sheetName, sheetNumber)) {
+            return;
+        }
+
+        try {
+            if (this.singleOut == null) {
+                this.out = this.exporter.getXMLWriter(sheetName);
+                this.out.writeStartDocument();
+            } else {
+                this.out = this.singleOut;
+            }
+            System.out.print(sheetName);
+            this.out.writeStartElement("sheet");
+            this.out.writeAttribute("name", sheetName);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            this.out = null;
+            return;
+        }
+        this.columns = new HashMap<>();
+        this.pendingRows.clear();
+        this.isFirst = true;
+        this.currentRow = -1;
+        this.expectFormulaString = false;
+        this.pendingFormula = null;
+        this.sharedValues.clear();
+    }
+
+    /**
+     * Writes out rows still open and closes the sheet
+     */
+    private void endSheet() {
+        if (this.out == null) {
+            return;
+        }
+        try {
+            this.writePendingFormula();
+            this.flushRowsBefore(Integer.MAX_VALUE);
+            this.out.writeEndElement();
+            if (this.singleOut == null) {
+                this.out.writeEndDocument();
+                this.out.close();
+            }
+        } catch (final XMLStreamException e) {
+            e.printStackTrace();
+        }
+        System.out.println("..");
+        this.out = null;
+    }
+
+    /**
+     * Writes a cell, opening its row first if needed
+     *
+     * @param row
+     *        the row index of the cell
+     * @param col
+     *        the column index
+     * @param cellValue
+     *        value of the cell, null for blank or error cells
+     * @param isBlank
+     *        a blank cell gets a generated title in the first row
+     */
+    private void writeCell(final int row, final int col, final String cellValue,
+            final boolean isBlank) {
+        try {
+            if (row != this.currentRow) {
+                this.flushRowsBefore(row);
+                this.pendingRows.remove(row);
+                this.startRow(row);
+            }
+            if (this.isFirst) {
+                this.count = this.exporter.writeEmptyColumns(this.count, col, this.out,
+                        this.columns);
+                final String title = isBlank ? "BLANK" + String.valueOf(this.count) : cellValue;
+                this.exporter.writeColumn(col, title, this.out, this.columns);
+            } else {
+                this.count = this.exporter.writeEmptyCells(row, this.count, col, this.out,
+                        this.columns);
+                this.exporter.writeAnyCell(row, col, cellValue, this.out, this.columns);
+            }
+            this.count++;
+        } catch (final XMLStreamException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the current row and writes out rows without cells that come
+     * before the given row
+     *
+     * @param row
+     *        the next row with cells
+     * @throws XMLStreamException
+     */
+    private void flushRowsBefore(final int row) throws XMLStreamException {
+        this.endRow();
+        while (!this.pendingRows.isEmpty() && this.pendingRows.first() < row) {
+            this.startRow(this.pendingRows.pollFirst());
+            this.endRow();
+        }
+    }
+
+    private void startRow(final int row) throws XMLStreamException {
+        if (this.isFirst) {
+            this.out.writeStartElement("columns");
+        } else {
+            this.out.writeStartElement("row");
+            this.out.writeAttribute("row", String.valueOf(row));
+        }
+        this.currentRow = row;
+        this.count = 0;
+    }
+
+    private void endRow() throws XMLStreamException {
+        if (this.currentRow > -1) {
+            this.out.writeEndElement();
+            this.isFirst = false;
+            this.currentRow = -1;
+        }
+    }
+
+}